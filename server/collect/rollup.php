@@ -0,0 +1,251 @@
+<?php
+        // Live crash counts per package, version, device model and Android
+        // version, over sliding windows of a minute, an hour and a day. All
+        // but the package are keyed as "<package> <value>", so that a single
+        // app's rollout can be watched on its own.
+        //
+        // Each window is a ring of buckets (e.g. the hour is 60 one-minute
+        // buckets). A report increments the current bucket of every window;
+        // buckets that have slid out of their window are dropped. Per bucket,
+        // each dimension is a "Space-Saving" summary of at most a fixed number
+        // of values, so a long tail of device models can't grow the state:
+        // once full, a new value evicts the smallest one and inherits its
+        // count (which is then remembered as the possible overcount, "error").
+        // So a reported count is an upper bound of the true count, and count
+        // minus error a lower one.
+        //
+        // Every bucket is a JSON file of its own, <window>/<start>.json, in
+        // ROLLUP_DIR. A report only rewrites the current bucket of each
+        // window: into a temporary file, which is then renamed over the old
+        // one, so a reader never sees a half-written bucket and needs no
+        // lock. Writers of a window take turns on <window>.lock, which also
+        // covers deleting the buckets that have slid out of it.
+        //
+        // ROLLUP_DIR has no default, and until it is set, either in the
+        // environment or by defining it before including this file, nothing
+        // is recorded. Point it at a directory only the collector can write
+        // to, and outside the document root (otherwise the rollups would
+        // bypass the localhost check in rollups.php). Files are created
+        // readable by the collector only.
+
+        if (!defined('ROLLUP_DIR'))
+                define('ROLLUP_DIR', (string)getenv('ROLLUP_DIR'));
+
+        // window name => array(bucket seconds, number of buckets)
+        $ROLLUP_WINDOWS = array(
+                'minute' => array(10, 6),
+                'hour'   => array(60, 60),
+                'day'    => array(3600, 24),
+        );
+
+        // dimension => most values kept per bucket
+        $ROLLUP_DIMENSIONS = array(
+                'package' => 50,
+                'version' => 50,
+                'model'   => 200,
+                'android' => 100,
+        );
+
+        // Count a report. $report maps each dimension to its value. Returns
+        // false if the rollups aren't configured, or couldn't be written.
+        function rollup_record($report, $now = null) {
+                global $ROLLUP_WINDOWS, $ROLLUP_DIMENSIONS;
+                if (ROLLUP_DIR == "")
+                        return false;
+                if ($now === null)
+                        $now = time();
+
+                $ok = true;
+                foreach ($ROLLUP_WINDOWS as $name => $spec) {
+                        list($width, $count) = $spec;
+                        $start = $now - $now % $width;
+                        $dir = ROLLUP_DIR."/".$name;
+                        if (!is_dir($dir) && !@mkdir($dir, 0700, true)) {
+                                $ok = false;
+                                continue;
+                        }
+                        $lock = @fopen(ROLLUP_DIR."/".$name.".lock", "c");
+                        if (!$lock) {
+                                $ok = false;
+                                continue;
+                        }
+                        flock($lock, LOCK_EX);
+
+                        $bucket = rollup_read($dir."/".$start.".json");
+                        if ($bucket === null)
+                                $bucket = array('total' => 0, 'dims' => array());
+                        $bucket['total']++;
+                        foreach ($ROLLUP_DIMENSIONS as $dim => $capacity) {
+                                $summary = isset($bucket['dims'][$dim]) ? $bucket['dims'][$dim] : array();
+                                $bucket['dims'][$dim] = rollup_offer($summary, rollup_clean($report[$dim]), $capacity);
+                        }
+                        if (!rollup_write($dir, $start, $bucket))
+                                $ok = false;
+                        rollup_expire($dir, $now, $width * $count);
+
+                        flock($lock, LOCK_UN);
+                        fclose($lock);
+                }
+                return $ok;
+        }
+
+        // Return, per window, the number of reports, the rate per minute, and
+        // per dimension the most frequent values with their counts.
+        // Nothing if the rollups aren't configured.
+        function rollup_query($now = null) {
+                global $ROLLUP_WINDOWS, $ROLLUP_DIMENSIONS;
+                if ($now === null)
+                        $now = time();
+
+                $result = array();
+                if (ROLLUP_DIR == "")
+                        return $result;
+                foreach ($ROLLUP_WINDOWS as $name => $spec) {
+                        list($width, $count) = $spec;
+                        $span = $width * $count;
+                        $buckets = rollup_buckets(ROLLUP_DIR."/".$name, $now, $span);
+
+                        $total = 0;
+                        foreach ($buckets as $bucket)
+                                $total += $bucket['total'];
+
+                        $dims = array();
+                        foreach ($ROLLUP_DIMENSIONS as $dim => $capacity) {
+                                // Every value seen in any bucket is a candidate.
+                                $values = array();
+                                foreach ($buckets as $bucket)
+                                        if (isset($bucket['dims'][$dim]))
+                                                foreach (array_keys($bucket['dims'][$dim]) as $value)
+                                                        $values[$value] = array('count' => 0, 'error' => 0);
+
+                                foreach ($buckets as $bucket) {
+                                        $summary = isset($bucket['dims'][$dim]) ? $bucket['dims'][$dim] : array();
+                                        // A full bucket may have evicted a value that is missing from
+                                        // it; its count there was at most the bucket's smallest one.
+                                        $min = count($summary) >= $capacity ? rollup_min($summary) : 0;
+                                        foreach (array_keys($values) as $value) {
+                                                if (isset($summary[$value])) {
+                                                        $values[$value]['count'] += $summary[$value][0];
+                                                        $values[$value]['error'] += $summary[$value][1];
+                                                }
+                                                else {
+                                                        $values[$value]['count'] += $min;
+                                                        $values[$value]['error'] += $min;
+                                                }
+                                        }
+                                }
+
+                                uasort($values, 'rollup_compare');
+                                $dims[$dim] = array_slice($values, 0, $capacity, true);
+                        }
+
+                        $result[$name] = array(
+                                'seconds' => $span,
+                                'total' => $total,
+                                'per_minute' => round($total * 60 / $span, 2),
+                                'dimensions' => $dims,
+                        );
+                }
+                return $result;
+        }
+
+        // The buckets of a window that are still inside it, by start time.
+        function rollup_buckets($dir, $now, $span) {
+                $buckets = array();
+                $names = @scandir($dir);
+                if ($names === false)
+                        return $buckets;
+                foreach ($names as $file) {
+                        if (!preg_match('/^(\d+)\.json$/', $file, $match) || $match[1] <= $now - $span)
+                                continue;
+                        $bucket = rollup_read($dir."/".$file);
+                        if ($bucket !== null)
+                                $buckets[(int)$match[1]] = $bucket;
+                }
+                return $buckets;
+        }
+
+        // A bucket, or null if there is none (yet).
+        function rollup_read($path) {
+                $data = @file_get_contents($path);
+                $bucket = $data === false ? null : json_decode($data, true);
+                return is_array($bucket) && isset($bucket['total']) ? $bucket : null;
+        }
+
+        function rollup_write($dir, $start, $bucket) {
+                $data = json_encode($bucket);
+                // Created readable by us only, and in the same directory, so
+                // that the rename can't cross file systems.
+                $temp = $data === false ? false : @tempnam($dir, ".tmp");
+                if ($temp === false)
+                        return false;
+                if (realpath(dirname($temp)) != realpath($dir)) {
+                        // tempnam() fell back to the system's directory.
+                        @unlink($temp);
+                        return false;
+                }
+                if (file_put_contents($temp, $data) !== strlen($data) || !rename($temp, $dir."/".$start.".json")) {
+                        @unlink($temp);
+                        return false;
+                }
+                return true;
+        }
+
+        // Delete the buckets that have slid out of a window of $span seconds,
+        // and whatever temporary files a crashed writer left behind.
+        function rollup_expire($dir, $now, $span) {
+                $names = @scandir($dir);
+                if ($names === false)
+                        return;
+                foreach ($names as $file) {
+                        if ($file == "." || $file == "..")
+                                continue;
+                        if (preg_match('/^(\d+)\.json$/', $file, $match))
+                                $old = $match[1] <= $now - $span;
+                        else
+                                $old = @filemtime($dir."/".$file) < $now - $span;
+                        if ($old)
+                                @unlink($dir."/".$file);
+                }
+        }
+
+        // json_encode() gives up on anything that isn't UTF-8, and the values
+        // come straight from the clients.
+        function rollup_clean($value) {
+                $value = (string)$value;
+                return preg_match('//u', $value) ? $value : preg_replace('/[\x80-\xff]/', '?', $value);
+        }
+
+        // Space-Saving update. $summary maps value => array(count, error).
+        function rollup_offer($summary, $value, $capacity) {
+                if (isset($summary[$value])) {
+                        $summary[$value][0]++;
+                }
+                else if (count($summary) < $capacity) {
+                        $summary[$value] = array(1, 0);
+                }
+                else {
+                        $smallest = null;
+                        foreach ($summary as $key => $entry)
+                                if ($smallest === null || $entry[0] < $summary[$smallest][0])
+                                        $smallest = $key;
+                        $min = $summary[$smallest][0];
+                        unset($summary[$smallest]);
+                        $summary[$value] = array($min + 1, $min);
+                }
+                return $summary;
+        }
+
+        // Smallest count in a Space-Saving summary.
+        function rollup_min($summary) {
+                $min = null;
+                foreach ($summary as $entry)
+                        if ($min === null || $entry[0] < $min)
+                                $min = $entry[0];
+                return $min === null ? 0 : $min;
+        }
+
+        function rollup_compare($a, $b) {
+                return $b['count'] - $a['count'];
+        }
+?>
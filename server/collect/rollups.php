@@ -0,0 +1,18 @@
+<?php
+        // Current crash rates, as JSON, for a rollout dashboard. Only served
+        // to the local machine; put a proxy in front if you need more.
+        $local = array("127.0.0.1", "::1");
+        if (!in_array($_SERVER['REMOTE_ADDR'], $local)) {
+                header("HTTP/1.0 403 Forbidden");
+                die("Rollups are only available locally.");
+        }
+
+        require_once("rollup.php");
+        if (ROLLUP_DIR == "") {
+                header("HTTP/1.0 503 Service Unavailable");
+                die("Rollups are not configured; set ROLLUP_DIR.");
+        }
+
+        header("Content-Type: application/json");
+        echo json_encode(rollup_query());
+?>
@@ -9,6 +9,15 @@
         fwrite($handle, $_POST['stacktrace']);
         fclose($handle);
 
+        // Keep the live rollups (see rollups.php) up to date.
+        require_once("rollup.php");
+        rollup_record(array(
+                'package' => $package,
+                'version' => $package." ".$version,
+                'model'   => $package." ".$_POST['phone_model'],
+                'android' => $package." ".$_POST['android_version'],
+        ));
+
 		// Uncomment and change the following line to have exceptions mailed to you
         //mail("mads.kristiansen@nullwire.com","IMPORTANT: Exception received (".$version.")",$_POST['stacktrace'], "from:bugs@nullwire.com");
 ?>
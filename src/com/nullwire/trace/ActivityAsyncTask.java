@@ -1,6 +1,14 @@
 package com.nullwire.trace;
 
-import android.os.AsyncTask;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 
 /**
  * Copied from android-autostarts:
@@ -30,20 +38,81 @@ import android.os.AsyncTask;
  * Note "processPostExecute()", which is a replacement for the
  * "postExcute()" method of ASyncTask which you should use instead.
  *
- * TODO: there is a small chance at race conditions here when checking
- * for mWrapped and setting mPostProcessingDone. We should fix those
- * by using a lock.
+ * Unlike the original, this no longer extends ASyncTask itself: on the
+ * platform versions we support, ASyncTask always runs on its own shared
+ * pool, while we want the caller to be able to choose the executor (see
+ * executeOn()). The callbacks still all run on the UI thread by default.
+ *
+ * The connected object, the lifecycle status, a pending result and
+ * whether it has been delivered all live in one immutable State, which
+ * is only ever replaced by compareAndSet(). Whoever wins the swap that
+ * marks the result as delivered is the one to call processPostExecute(),
+ * so it runs exactly once, and always with the object that was connected
+ * at that moment. Nothing here takes a lock.
+ *
+ * Where the callbacks are posted to can be replaced by passing a
+ * CallbackPoster; tests/ uses this to exercise the state machine on a
+ * plain JVM.
  */
-public abstract class ActivityAsyncTask<Connect, Params, Progress, Result>
-		extends AsyncTask<Params, Progress, Result> {
+public abstract class ActivityAsyncTask<Connect, Params, Progress, Result> {
+
+	public enum Status { PENDING, RUNNING, FINISHED }
+
+	/**
+	 * Runs the task's callbacks, possibly after a delay.
+	 */
+	public static interface CallbackPoster {
+		void post(Runnable runnable, long delayMillis);
+	}
+
+	/**
+	 * Posts to the UI thread. A separate class, so that nothing from
+	 * android.os is loaded unless it is actually used.
+	 */
+	private static class MainThreadPoster implements CallbackPoster {
+		private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+		public void post(Runnable runnable, long delayMillis) {
+			mHandler.postDelayed(runnable, delayMillis);
+		}
+	}
+
+	private static CallbackPoster sMainThreadPoster = null;
+	private static Executor sDefaultExecutor = null;
+
+	/**
+	 * A snapshot of the task; never modified, only replaced.
+	 */
+	private static final class State<C, R> {
+		final Status status;
+		final C wrapped;
+		final R result;
+		final boolean delivered;
 
-	protected volatile Connect mWrapped;
-	private volatile boolean mPostProcessingDone;
-	private Result mResult;
+		State(Status status, C wrapped, R result, boolean delivered) {
+			this.status = status;
+			this.wrapped = wrapped;
+			this.result = result;
+			this.delivered = delivered;
+		}
+	}
+
+	private final AtomicReference<State<Connect, Result>> mState;
+	private final CallbackPoster mPoster;
 
 	public ActivityAsyncTask(Connect initialConnect) {
+		this(initialConnect, null);
+	}
+
+	/**
+	 * @param poster where to run the callbacks, or "null" for the UI
+	 *     thread.
+	 */
+	public ActivityAsyncTask(Connect initialConnect, CallbackPoster poster) {
 		super();
-		mPostProcessingDone = false;
+		mPoster = poster != null ? poster : getMainThreadPoster();
+		mState = new AtomicReference<State<Connect, Result>>(
+				new State<Connect, Result>(Status.PENDING, null, null, false));
 		connectTo(initialConnect);
 	}
 
@@ -53,55 +122,195 @@ public abstract class ActivityAsyncTask<Connect, Params, Progress, Result>
 	 * Raises an exception if we are already connected.
 	 */
 	public void connectTo(Connect wrappedObject) {
-		if (mWrapped != null && wrappedObject != null)
-			throw new IllegalStateException();
+		swapConnection(wrappedObject, false);
+	}
+
+	/**
+	 * Like connectTo(), but replaces any object currently connected
+	 * rather than raising an exception. Returns the object replaced,
+	 * or "null".
+	 */
+	public Connect reconnectTo(Connect wrappedObject) {
+		return swapConnection(wrappedObject, true);
+	}
 
-		mWrapped = wrappedObject;
+	private Connect swapConnection(Connect wrappedObject, boolean replace) {
+		while (true) {
+			State<Connect, Result> current = mState.get();
+			if (!replace && current.wrapped != null && wrappedObject != null)
+				throw new IllegalStateException();
+
+			// If we were unable to do the full post processing because of
+			// no object being available, claim it now, as part of the
+			// same swap that connects us.
+			boolean deliver = wrappedObject != null
+					&& current.status == Status.FINISHED && !current.delivered;
+			State<Connect, Result> next = deliver
+					? new State<Connect, Result>(Status.FINISHED, wrappedObject, null, true)
+					: new State<Connect, Result>(current.status, wrappedObject,
+							current.result, current.delivered);
+			if (!mState.compareAndSet(current, next))
+				continue;
 
-		if (mWrapped != null) {
+			if (deliver)
+				processPostExecute(wrappedObject, current.result);
 			// Set the task up with the new activity.
-			if (getStatus() == Status.RUNNING)
+			else if (wrappedObject != null && current.status == Status.RUNNING)
 				onPreExecute();
-
-			// If we were unable to do the full post processing because of
-			// no object being available, do so now.
-			else if (getStatus() == Status.FINISHED && !mPostProcessingDone) {
-				mPostProcessingDone = true;
-				processPostExecute(mResult);
-				mResult = null;  // Be sure to free reference now.
-			}
+			return current.wrapped;
 		}
 	}
 
+	/**
+	 * Return the currently connected object, or "null".
+	 */
+	protected Connect getWrapped() {
+		return mState.get().wrapped;
+	}
+
 	/**
 	 * Return whether post processing has been completed.
 	 */
 	public boolean postProcessingDone() {
-		return mPostProcessingDone;
+		return mState.get().delivered;
+	}
+
+	public final Status getStatus() {
+		return mState.get().status;
+	}
+
+	/**
+	 * Start the task on the default executor, a single low-priority
+	 * background thread shared by all tasks. Must be called on the UI
+	 * thread.
+	 */
+	public final ActivityAsyncTask<Connect, Params, Progress, Result> execute(
+			Params... params) {
+		return executeOn(getDefaultExecutor(), params);
+	}
+
+	/**
+	 * Start the task, running doInBackground() on the given executor.
+	 * Must be called on the UI thread, and only once.
+	 */
+	public final ActivityAsyncTask<Connect, Params, Progress, Result> executeOn(
+			Executor executor, final Params... params) {
+		while (true) {
+			State<Connect, Result> current = mState.get();
+			if (current.status != Status.PENDING)
+				throw new IllegalStateException("task has already been started");
+			if (mState.compareAndSet(current, new State<Connect, Result>(
+					Status.RUNNING, current.wrapped, null, false)))
+				break;
+		}
+
+		onPreExecute();
+
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					Result result = null;
+					try {
+						result = doInBackground(params);
+					} finally {
+						// Even if doInBackground() threw, so that we don't
+						// stay RUNNING forever.
+						postFinish(result, Math.max(0, getFinishDelay()));
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// Likewise, finish without a result, then let the caller know.
+			postFinish(null, 0);
+			throw e;
+		}
+		return this;
+	}
+
+	private void postFinish(final Result result, long delay) {
+		mPoster.post(new Runnable() {
+			public void run() {
+				finish(result);
+			}
+		}, delay);
 	}
 
-	@Override
-	protected void onPostExecute(Result result) {
-		super.onPostExecute(result);
+	private void finish(Result result) {
+		while (true) {
+			State<Connect, Result> current = mState.get();
+			// We need to make sure we only go on if an activity is
+			// attached. Since it's possible that, say, an orientation
+			// change happens while we are running, it can happen that
+			// there isn't one. If so, processPostExecute() will be
+			// run the next time one is attached.
+			boolean deliver = current.wrapped != null;
+			State<Connect, Result> next = deliver
+					? new State<Connect, Result>(Status.FINISHED, current.wrapped, null, true)
+					// Remember result for the next connect.
+					: new State<Connect, Result>(Status.FINISHED, null, result, false);
+			if (!mState.compareAndSet(current, next))
+				continue;
 
-		// We need to make sure we only go on if an activity is
-		// attached. Since it's possible that, say, an orientation
-		// change happens while we are running, it can happen that
-		// there isn't one. If so, processPostExecute() will be
-		// run the next time one is attached.
-		if (mWrapped != null) {
-			mPostProcessingDone = true;
-			processPostExecute(result);
+			if (deliver)
+				processPostExecute(current.wrapped, result);
+			return;
 		}
-		else
-			// Remember result for the next connect.
-			mResult = result;
 	}
 
 	/**
-	 * You should override this rather than onPostExecute()
-	 * to ensure your handler will be called even if at the
-	 * time of a finish the task is not connected.
+	 * Call from doInBackground() to have onProgressUpdate() run on the
+	 * UI thread.
+	 */
+	protected final void publishProgress(final Progress... values) {
+		mPoster.post(new Runnable() {
+			public void run() {
+				onProgressUpdate(values);
+			}
+		}, 0);
+	}
+
+	protected void onPreExecute() {}
+
+	protected abstract Result doInBackground(Params... params);
+
+	protected void onProgressUpdate(Progress... values) {}
+
+	/**
+	 * How long (in milliseconds) to hold off finishing the task after
+	 * doInBackground() has returned. Asked on the background thread.
+	 */
+	protected long getFinishDelay() {
+		return 0;
+	}
+
+	/**
+	 * Called exactly once, with the object connected at the time,
+	 * either when the task finishes or, if nothing was connected then,
+	 * on the next connect.
 	 */
-	protected abstract void processPostExecute(Result result);
+	protected abstract void processPostExecute(Connect wrapped, Result result);
+
+	private static synchronized CallbackPoster getMainThreadPoster() {
+		if (sMainThreadPoster == null)
+			sMainThreadPoster = new MainThreadPoster();
+		return sMainThreadPoster;
+	}
+
+	private static synchronized Executor getDefaultExecutor() {
+		if (sDefaultExecutor == null)
+			sDefaultExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(final Runnable r) {
+					Thread thread = new Thread(new Runnable() {
+						public void run() {
+							// Stay out of the way of the app's own work.
+							Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+							r.run();
+						}
+					}, "ActivityAsyncTask");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		return sDefaultExecutor;
+	}
 }
@@ -0,0 +1,165 @@
+package com.nullwire.trace;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+/**
+ * Holds off uploads until all of a set of conditions are met, for
+ * example until the device is charging and on wifi:
+ *
+ *     ExceptionHandler.setSubmissionScheduler(
+ *         new ConditionalSubmissionScheduler(context, null,
+ *             ConditionalSubmissionScheduler.CHARGING,
+ *             ConditionalSubmissionScheduler.UNMETERED_NETWORK));
+ *
+ * Conditions are evaluated when the upload is scheduled, and again
+ * whenever one of their trigger broadcasts arrives, or recheck() is
+ * called.
+ */
+public class ConditionalSubmissionScheduler implements SubmissionScheduler {
+
+	public static interface Condition {
+		boolean isMet(Context context);
+
+		/**
+		 * Broadcast actions after which isMet() should be asked again.
+		 */
+		String[] getTriggerActions();
+	}
+
+	/**
+	 * Device is plugged in.
+	 */
+	public static final Condition CHARGING = new Condition() {
+		public boolean isMet(Context context) {
+			Intent battery = context.registerReceiver(
+					null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+			// BatteryManager.EXTRA_PLUGGED is not available on 1.5.
+			return battery != null && battery.getIntExtra("plugged", 0) != 0;
+		}
+
+		public String[] getTriggerActions() {
+			return new String[] { Intent.ACTION_BATTERY_CHANGED };
+		}
+	};
+
+	/**
+	 * Connected via wifi. Requires the ACCESS_NETWORK_STATE permission.
+	 */
+	public static final Condition UNMETERED_NETWORK = new Condition() {
+		public boolean isMet(Context context) {
+			ConnectivityManager cm = (ConnectivityManager)
+					context.getSystemService(Context.CONNECTIVITY_SERVICE);
+			NetworkInfo info = cm.getActiveNetworkInfo();
+			return info != null && info.isConnected()
+					&& info.getType() == ConnectivityManager.TYPE_WIFI;
+		}
+
+		public String[] getTriggerActions() {
+			return new String[] { ConnectivityManager.CONNECTIVITY_ACTION };
+		}
+	};
+
+	/**
+	 * A condition you switch by hand. Useful in tests, to stand in for
+	 * CHARGING or UNMETERED_NETWORK, or to tie uploads to a preference.
+	 * Call recheck() on the scheduler after changing it.
+	 */
+	public static class SettableCondition implements Condition {
+		private volatile boolean mMet;
+
+		public SettableCondition(boolean met) {
+			mMet = met;
+		}
+
+		public void set(boolean met) {
+			mMet = met;
+		}
+
+		public boolean isMet(Context context) {
+			return mMet;
+		}
+
+		public String[] getTriggerActions() {
+			return new String[0];
+		}
+	}
+
+	private final Context mContext;
+	private final Executor mExecutor;
+	private final Condition[] mConditions;
+	private final ArrayList<Submission> mPending = new ArrayList<Submission>();
+	private BroadcastReceiver mReceiver = null;
+
+	/**
+	 * @param context any context; only the application context is kept.
+	 * @param executor where to run the upload, or "null" for the default.
+	 * @param conditions all of which need to be met.
+	 */
+	public ConditionalSubmissionScheduler(Context context, Executor executor,
+			Condition... conditions) {
+		mContext = context.getApplicationContext();
+		mExecutor = executor;
+		mConditions = conditions;
+	}
+
+	public void schedule(Submission submission) {
+		synchronized (this) {
+			mPending.add(submission);
+			if (mReceiver == null)
+				registerReceiver();
+		}
+		recheck();
+	}
+
+	/**
+	 * Evaluate the conditions again, and start all pending uploads if
+	 * they are all met now.
+	 */
+	public void recheck() {
+		ArrayList<Submission> pending;
+		synchronized (this) {
+			if (mPending.isEmpty() || !allMet())
+				return;
+			pending = new ArrayList<Submission>(mPending);
+			mPending.clear();
+			if (mReceiver != null) {
+				mContext.unregisterReceiver(mReceiver);
+				mReceiver = null;
+			}
+		}
+		for (Submission submission : pending)
+			submission.start(mExecutor);
+	}
+
+	private boolean allMet() {
+		for (Condition condition : mConditions)
+			if (!condition.isMet(mContext))
+				return false;
+		return true;
+	}
+
+	private void registerReceiver() {
+		IntentFilter filter = new IntentFilter();
+		for (Condition condition : mConditions)
+			for (String action : condition.getTriggerActions())
+				filter.addAction(action);
+		if (filter.countActions() == 0)
+			return;
+
+		mReceiver = new BroadcastReceiver() {
+			@Override
+			public void onReceive(Context context, Intent intent) {
+				recheck();
+			}
+		};
+		mContext.registerReceiver(mReceiver, filter);
+	}
+}
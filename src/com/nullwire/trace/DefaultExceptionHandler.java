@@ -32,19 +32,41 @@ Peter Hewitt
 package com.nullwire.trace;
 
 import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.util.Log;
 
 public class DefaultExceptionHandler implements UncaughtExceptionHandler {
 
+	// Suffix of records that are still being written.
+	static final String TEMP_SUFFIX = ".stacktrace.tmp";
+
+	// Upper limits for the thread dump, whatever was configured.
+	public static final int MAX_DUMP_THREADS = 1000;
+	public static final int MAX_DUMP_FRAMES = 256;
+
+	// How long a crash that happened while an earlier one is still being
+	// recorded will wait for it, before chaining to the original handler
+	// (which typically kills the process) on its own.
+	private static final long CONCURRENT_CRASH_WAIT = 3000;
+
 	private UncaughtExceptionHandler defaultExceptionHandler;
 
+	// Numbers the crashes in this process; the first one gets priority.
+	private final AtomicInteger mCrashCount = new AtomicInteger(0);
+	private final CountDownLatch mFirstCrashRecorded = new CountDownLatch(1);
+
 	// constructor
 	public DefaultExceptionHandler(UncaughtExceptionHandler pDefaultExceptionHandler)
 	{
@@ -53,31 +75,128 @@ public class DefaultExceptionHandler implements UncaughtExceptionHandler {
 
 	// Default exception handler
 	public void uncaughtException(Thread t, Throwable e) {
-		// Here you should have a more robust, permanent record of problems
-		final Writer result = new StringWriter();
-		final PrintWriter printWriter = new PrintWriter(result);
-		e.printStackTrace(printWriter);
+		int crash = mCrashCount.incrementAndGet();
+
 		try {
-			// Random number to avoid duplicate files
-			Random generator = new Random();
-			int random = generator.nextInt(99999);
-			// Embed version in stacktrace filename
-			String filename = G.APP_VERSION+"-"+Integer.toString(random);
-			Log.d(G.TAG, "Writing unhandled exception to: " + G.FILES_PATH+"/"+filename+".stacktrace");
-			// Write the stacktrace to disk
-			BufferedWriter bos = new BufferedWriter(new FileWriter(G.FILES_PATH+"/"+filename+".stacktrace"));
-			bos.write(G.ANDROID_VERSION + "\n");
-			bos.write(G.PHONE_MODEL + "\n");
-			bos.write(result.toString());
-			bos.flush();
-			// Close up everything
-			bos.close();
-		} catch (Exception ebos) {
-			// Nothing much we can do about this - the game is over
-			Log.e(G.TAG, "Error saving exception stacktrace", e);
+			// Here you should have a more robust, permanent record of problems
+			final Writer result = new StringWriter();
+			final PrintWriter printWriter = new PrintWriter(result);
+			e.printStackTrace(printWriter);
+			// After the trace, so that it still starts with the exception.
+			if (crash > 1)
+				printWriter.println("(crash #" + crash + " in this process, on thread \""
+						+ t.getName() + "\")");
+			printWriter.flush();
+			try {
+				// Random number to avoid duplicate files; the crash number
+				// makes sure two threads crashing at once can't collide.
+				Random generator = new Random();
+				int random = generator.nextInt(99999);
+				// Embed version in stacktrace filename
+				String filename = G.APP_VERSION+"-"+Integer.toString(random)+"-"+crash;
+				File file = new File(G.FILES_PATH+"/"+filename+".stacktrace");
+				// Write to a temporary file first, and only rename it once
+				// complete, so that if we are killed halfway, the next run
+				// won't pick up a torn record.
+				File temp = new File(G.FILES_PATH+"/"+filename+TEMP_SUFFIX);
+				Log.d(G.TAG, "Writing unhandled exception to: " + file.getPath());
+				// Write the stacktrace to disk
+				FileOutputStream fos = new FileOutputStream(temp);
+				BufferedWriter bos = new BufferedWriter(new OutputStreamWriter(fos));
+				try {
+					bos.write(G.ANDROID_VERSION + "\n");
+					bos.write(G.PHONE_MODEL + "\n");
+					bos.write(result.toString());
+					// Only for the first crash; later ones should be quick
+					// to get out of its way.
+					if (G.THREAD_DUMP_MAX_THREADS > 0 && crash == 1)
+						try {
+							writeThreadDump(bos, t);
+						} catch (Throwable edump) {
+							// Don't lose the actual trace over this, not even
+							// if walking the threads ran out of memory or stack.
+							Log.e(G.TAG, "Error writing thread dump", edump);
+						}
+					bos.flush();
+					fos.getFD().sync();
+				} finally {
+					// Close up everything
+					bos.close();
+				}
+				if (!temp.renameTo(file))
+					throw new IOException("Unable to rename " + temp.getPath());
+			} catch (Exception ebos) {
+				// Nothing much we can do about this - the game is over
+				Log.e(G.TAG, "Error saving exception stacktrace", e);
+			}
+			Log.d(G.TAG, result.toString());
+		} finally {
+			// Whatever went wrong above, don't leave later crashes waiting,
+			// and don't swallow this one.
+			if (crash == 1)
+				mFirstCrashRecorded.countDown();
+			else
+				// Calling the original handler now would likely kill the
+				// process while the first crash is still being written.
+				try {
+					mFirstCrashRecorded.await(CONCURRENT_CRASH_WAIT, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException eint) {
+					Thread.currentThread().interrupt();
+				}
+
+			//call original handler
+			defaultExceptionHandler.uncaughtException(t, e);
+		}
+	}
+
+	/**
+	 * Write the stacks of all live threads besides the crashed one
+	 * straight to the given writer, within the limits configured in G.
+	 *
+	 * We don't use Thread.getAllStackTraces(), which would collect the
+	 * full stack of every thread up front, no matter how many there are.
+	 */
+	private static void writeThreadDump(Writer out, Thread crashed) throws IOException {
+		long deadline = System.currentTimeMillis() + G.THREAD_DUMP_TIME_BUDGET;
+		// The fields in G are public, so don't rely on setThreadDump()
+		// having checked them.
+		int maxThreads = Math.max(0, Math.min(G.THREAD_DUMP_MAX_THREADS, MAX_DUMP_THREADS));
+		int maxFrames = Math.max(0, Math.min(G.THREAD_DUMP_MAX_FRAMES, MAX_DUMP_FRAMES));
+
+		ThreadGroup root = crashed.getThreadGroup();
+		while (root != null && root.getParent() != null)
+			root = root.getParent();
+		if (root == null)
+			return;
+
+		// One extra slot, since the crashed thread will be among them.
+		Thread[] threads = new Thread[maxThreads + 1];
+		int count = root.enumerate(threads, true);
+		int total = root.activeCount();
+
+		out.write("\n--- All threads (about " + total + " alive) ---\n");
+		int written = 0;
+		for (int i = 0; i < count && written < maxThreads; i++) {
+			Thread thread = threads[i];
+			if (thread == crashed)
+				continue;
+			if (System.currentTimeMillis() > deadline) {
+				out.write("(time budget exhausted)\n");
+				return;
+			}
+
+			out.write("\n\"" + thread.getName() + "\" state=" + thread.getState()
+					+ " prio=" + thread.getPriority()
+					+ (thread.isDaemon() ? " daemon" : "") + "\n");
+			StackTraceElement[] frames = thread.getStackTrace();
+			int shown = Math.min(frames.length, maxFrames);
+			for (int f = 0; f < shown; f++)
+				out.write("\tat " + frames[f] + "\n");
+			if (frames.length > shown)
+				out.write("\t... " + (frames.length - shown) + " more\n");
+			written++;
 		}
-		Log.d(G.TAG, result.toString());
-		//call original handler
-		defaultExceptionHandler.uncaughtException(t, e);
+		if (total > written + 1)
+			out.write("(" + (total - written - 1) + " more threads not shown)\n");
 	}
 }
\ No newline at end of file
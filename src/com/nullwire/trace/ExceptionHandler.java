@@ -39,7 +39,11 @@ import java.io.FilenameFilter;
 import java.io.IOException;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.http.NameValuePair;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
@@ -55,6 +59,8 @@ import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
 /**
@@ -78,14 +84,25 @@ import android.util.Log;
 public class ExceptionHandler {
 
 	// Stores loaded stack traces in memory. Each element is
-	// a tuple of (app version, android version, phone model, actual trace).
+	// a tuple of (app version, android version, phone model, actual trace,
+	// path of the file it was loaded from).
 	private static ArrayList<String[]> sStackTraces = null;
 
+	// Files of traces currently being submitted. They are only deleted
+	// once uploaded, and must not be loaded again in the meantime.
+	private static final HashSet<String> sClaimedFiles = new HashSet<String>();
+
+	// The submission under way, if any: scheduled, waiting for a
+	// processor, or running. There is only ever one, and it always
+	// belongs to sTask, so that setup() and notifyContextGone() reach it.
+	private static TaskSubmission sSubmission = null;
+
 	private static ActivityAsyncTask<Processor, Object, Object, Object> sTask;
 	private static boolean sVerbose = false;
 	private static int sMinDelay = 0;
 	private static Integer sTimeout = null;
 	private static boolean sSetupCalled = false;
+	private static SubmissionScheduler sScheduler = null;
 
 	public static interface Processor {
 		boolean beginSubmit();
@@ -107,12 +124,14 @@ public class ExceptionHandler {
 			if (sTask != null && !sTask.postProcessingDone()) {
 				// We don't want to force the user to call our
 				// notifyContextGone() if he doesn't care about that
-				// functionality anyway, so in order to avoid the
-				// InvalidStateException, ensure first that we are
-				// disconnected.
-				sTask.connectTo(null);
-				sTask.connectTo(processor);
+				// functionality anyway, so replace whatever might still
+				// be connected, in one step.
+				sTask.reconnectTo(processor);
 			}
+			// If the submission came due while no processor was
+			// around, it can go ahead now.
+			if (sSubmission != null)
+				sSubmission.resume();
 			return false;
 		}
 		sSetupCalled = true;
@@ -203,61 +222,57 @@ public class ExceptionHandler {
 
 		boolean stackTracesFound = hasStrackTraces();
 
-		// If traces exist, we need to submit them
+		// If traces exist, we need to submit them. Only once the
+		// scheduler starts the submission do we ask the processor
+		// (see TaskSubmission), so that it doesn't have to show
+		// anything while we are still waiting.
 		if (stackTracesFound) {
-			boolean proceed = processor.beginSubmit();
-			if (proceed)
-			{
-				// Move the list of traces to a private variable.
-				// This ensures that subsequent calls to hasStackTraces()
-				// while the submission thread is ongoing, will return
-				// false, or at least would refer to some new set of
-				// traces.
-				//
-				// Yes, it would not be a problem from our side to have
-				// two of these submission threads ongoing at the same
-				// time (although it wouldn't currently happen as no new
-				// traces can be added to the list besides through crashing
-				// the process); however, the user's callback processor
-				// might not be written to deal with that scenario.
-				final ArrayList<String[]> tracesNowSubmitting = sStackTraces;
-				sStackTraces = null;
-
-				sTask = new ActivityAsyncTask<Processor, Object, Object, Object>(processor) {
-
-					private long mTimeStarted;
-
-					@Override
-					protected void onPreExecute() {
-						super.onPreExecute();
-						mTimeStarted = System.currentTimeMillis();
-					}
+			// If a submission is already under way, don't start a
+			// second one, which would go on talking to its old
+			// processor where setup() and notifyContextGone() can't
+			// reach it. Have it report to the new processor instead.
+			if (sSubmission != null) {
+				sTask.reconnectTo(processor);
+				sSubmission.resume();
+				return stackTracesFound;
+			}
 
-					@Override
-					protected Object doInBackground(Object... params) {
-						submitStackTraces(tracesNowSubmitting);
+			sTask = new ActivityAsyncTask<Processor, Object, Object, Object>(processor) {
 
-						long rest = sMinDelay - (System.currentTimeMillis() - mTimeStarted);
-						if (rest > 0)
-							try {
-								Thread.sleep(rest);
-							} catch (InterruptedException e) { e.printStackTrace(); }
+				private long mTimeStarted;
 
-						return null;
-					}
+				@Override
+				protected void onPreExecute() {
+					super.onPreExecute();
+					mTimeStarted = System.currentTimeMillis();
+				}
 
-					@Override
-					protected void onCancelled() {
-						super.onCancelled();
-					}
+				@Override
+				@SuppressWarnings("unchecked")
+				protected Object doInBackground(Object... params) {
+					submitStackTraces((ArrayList<String[]>) params[0]);
+					return null;
+				}
 
-					@Override
-					protected void processPostExecute(Object result) {
-						mWrapped.submitDone();
-					}
-				};
-				sTask.execute();
-			}
+				@Override
+				protected long getFinishDelay() {
+					// Rather than sleeping on the background thread,
+					// have the UI thread finish us later.
+					return sMinDelay - (System.currentTimeMillis() - mTimeStarted);
+				}
+
+				@Override
+				protected void processPostExecute(Processor wrapped, Object result) {
+					if (sSubmission != null && sSubmission.mTask == this)
+						sSubmission = null;
+					wrapped.submitDone();
+				}
+			};
+
+			if (sScheduler == null)
+				sScheduler = new IdleSubmissionScheduler();
+			sSubmission = new TaskSubmission(sTask);
+			sScheduler.schedule(sSubmission);
 		}
 
 		return stackTracesFound;
@@ -316,6 +331,42 @@ public class ExceptionHandler {
 		sMinDelay = delay;
 	}
 
+	/**
+	 * Configure when and where traces from a previous crash are uploaded.
+	 * By default, this happens on a low-priority background thread, once
+	 * the UI thread is first idle. See SubmissionScheduler.
+	 *
+	 * @param scheduler
+	 */
+	public static void setSubmissionScheduler(SubmissionScheduler scheduler) {
+		sScheduler = scheduler;
+	}
+
+	/**
+	 * Include the stacks of all other live threads, with their names
+	 * and states, in the crash record. Useful for deadlocks and crashes
+	 * in thread pools, where the interesting state is elsewhere.
+	 *
+	 * The dump is bounded so that the crash path stays quick: at most
+	 * maxThreads threads and maxFrames frames per thread are written,
+	 * and we stop early once timeBudget milliseconds have passed.
+	 *
+	 * Pass 0 for maxThreads to disable (the default). Negative values
+	 * are rejected; maxThreads and maxFrames are capped at
+	 * DefaultExceptionHandler.MAX_DUMP_THREADS and MAX_DUMP_FRAMES.
+	 *
+	 * @param maxThreads
+	 * @param maxFrames
+	 * @param timeBudget
+	 */
+	public static void setThreadDump(int maxThreads, int maxFrames, long timeBudget) {
+		if (maxThreads < 0 || maxFrames < 0 || timeBudget < 0)
+			throw new IllegalArgumentException("thread dump limits must not be negative");
+		G.THREAD_DUMP_MAX_THREADS = Math.min(maxThreads, DefaultExceptionHandler.MAX_DUMP_THREADS);
+		G.THREAD_DUMP_MAX_FRAMES = Math.min(maxFrames, DefaultExceptionHandler.MAX_DUMP_FRAMES);
+		G.THREAD_DUMP_TIME_BUDGET = timeBudget;
+	}
+
 	/**
 	 * Configure a timeout to use when submitting stack traces.
 	 *
@@ -339,21 +390,25 @@ public class ExceptionHandler {
 	}
 
 	/**
-	 * Delete loaded stack traces from memory. Normally, this will
-	 * happen automatically after submission, but if you don't submit,
-	 * this is for you.
+	 * Delete loaded stack traces from memory and disk. Normally, this
+	 * will happen automatically after submission, but if you don't
+	 * submit, this is for you.
 	 */
 	public static void clear() {
+		if (sStackTraces != null)
+			for (int i=0; i < sStackTraces.size(); i++)
+				new File(sStackTraces.get(i)[4]).delete();
 		sStackTraces = null;
 	}
 
 	/**
-	 * Search for stack trace files, read them into memory and delete
-	 * them from disk.
+	 * Search for stack trace files and read them into memory.
 	 *
 	 * They are read into memory immediately so we can go ahead and
 	 * install the exception handler right away, and only then try
-	 * and submit the traces.
+	 * and submit the traces. The files themselves stay on disk until
+	 * they have been uploaded, since the scheduler may hold off the
+	 * upload for a long time, and the process may die in between.
 	 */
 	private static ArrayList<String[]> getStackTraces() {
 		if (sStackTraces != null) {
@@ -369,13 +424,18 @@ public class ExceptionHandler {
 			dir.mkdir();
 		FilenameFilter filter = new FilenameFilter() {
 			public boolean accept(File dir, String name) {
-				return name.endsWith(".stacktrace");
+				return name.endsWith(".stacktrace")
+					&& !isClaimed(G.FILES_PATH + "/" + name);
 			}
 		};
 		String[] list = dir.list(filter);
 
 		Log.d(G.TAG, "Found "+list.length+" stacktrace(s)");
 
+		deleteTornStackTraces(dir);
+
+		// Files we loaded, and therefore keep until they are uploaded.
+		HashSet<String> loaded = new HashSet<String>();
 		try {
 			final int MAX_TRACES = 5;
 			sStackTraces = new ArrayList<String[]>();
@@ -417,7 +477,8 @@ public class ExceptionHandler {
 					String stacktrace = contents.toString();
 
 					sStackTraces.add(new String[] {
-						version, androidVersion, phoneModel, stacktrace });
+						version, androidVersion, phoneModel, stacktrace, filePath });
+					loaded.add(filePath);
 				} catch (FileNotFoundException e) {
 					Log.e(G.TAG, "Failed to load stack trace", e);
 				} catch (IOException e) {
@@ -428,13 +489,16 @@ public class ExceptionHandler {
 			return sStackTraces;
 		}
 		finally {
-			// Delete ALL the stack traces, even those not read (if
-			// there were too many), and do this within a finally
-			// clause so that even if something very unexpected went
-			// wrong above, it hopefully won't happen again the next
-			// time around (because the offending files are gone).
+			// Delete ALL the stack traces we did not load, either
+			// because there were too many or because reading them
+			// failed, and do this within a finally clause so that even
+			// if something very unexpected went wrong above, it
+			// hopefully won't happen again the next time around
+			// (because the offending files are gone).
 			for (int i=0; i < list.length; i++)
 			{
+				if (loaded.contains(G.FILES_PATH+"/"+list[i]))
+					continue;
 				try {
 					File file = new File(G.FILES_PATH+"/"+list[i]);
 					file.delete();
@@ -446,8 +510,31 @@ public class ExceptionHandler {
 	}
 
 	/**
-	 * Look into the files folder to see if there are any "*.stacktrace" files.
-	 * If any are present, submit them to the trace server.
+	 * Delete records the exception handler began writing, but never
+	 * completed because the process was killed first.
+	 *
+	 * Only files older than a minute are considered, since we may be
+	 * called while the handler is installed, and it might be writing
+	 * one right now.
+	 */
+	private static void deleteTornStackTraces(File dir) {
+		final long cutoff = System.currentTimeMillis() - 60 * 1000;
+		File[] torn = dir.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(DefaultExceptionHandler.TEMP_SUFFIX);
+			}
+		});
+		if (torn == null)
+			return;
+		for (int i=0; i < torn.length; i++)
+			if (torn[i].lastModified() < cutoff && !torn[i].delete())
+				Log.e(G.TAG, "Error deleting torn trace file: "+torn[i]);
+	}
+
+	/**
+	 * Submit the given traces to the trace server, deleting each one's
+	 * file once it is out. On error, we stop; the remaining files will
+	 * be picked up again the next time the app starts.
 	 */
 	private static void submitStackTraces(ArrayList<String[]> list) {
 		try {
@@ -485,9 +572,127 @@ public class ExceptionHandler {
 				// We don't care about the response, so we just hope it
 				// went well and on with it.
 				httpClient.execute(httpPost);
+				new File(record[4]).delete();
 			}
 		} catch (Exception e) {
 			Log.e(G.TAG, "Error submitting trace", e);
+		} finally {
+			claim(list, false);
+		}
+	}
+
+	/**
+	 * Mark the files of the given traces as being submitted, or no
+	 * longer so.
+	 */
+	private static void claim(ArrayList<String[]> traces, boolean claimed) {
+		if (traces == null)
+			return;
+		synchronized (sClaimedFiles) {
+			for (int i=0; i < traces.size(); i++)
+				if (claimed)
+					sClaimedFiles.add(traces.get(i)[4]);
+				else
+					sClaimedFiles.remove(traces.get(i)[4]);
+		}
+	}
+
+	private static boolean isClaimed(String path) {
+		synchronized (sClaimedFiles) {
+			return sClaimedFiles.contains(path);
+		}
+	}
+
+	/**
+	 * Starts the submission task on the UI thread, whenever and from
+	 * wherever the scheduler tells us to.
+	 */
+	private static class TaskSubmission implements SubmissionScheduler.Submission {
+		private final ActivityAsyncTask<Processor, Object, Object, Object> mTask;
+		private final AtomicBoolean mStarted = new AtomicBoolean(false);
+		private boolean mWaiting = false;
+		private Executor mWaitingExecutor = null;
+
+		TaskSubmission(ActivityAsyncTask<Processor, Object, Object, Object> task) {
+			mTask = task;
+		}
+
+		public void start(final Executor executor) {
+			if (!mStarted.compareAndSet(false, true))
+				return;
+
+			Runnable start = new Runnable() {
+				public void run() {
+					begin(executor);
+				}
+			};
+			if (Looper.myLooper() == Looper.getMainLooper())
+				start.run();
+			else
+				new Handler(Looper.getMainLooper()).post(start);
+		}
+
+		/**
+		 * On the UI thread: ask the processor, and if it agrees, run
+		 * the task on whatever traces are loaded right now.
+		 */
+		void begin(Executor executor) {
+			Processor processor = mTask.getWrapped();
+			if (processor == null) {
+				// The context is gone; try again once setup() gives
+				// us a new one.
+				mWaiting = true;
+				mWaitingExecutor = executor;
+				return;
+			}
+			if (!processor.beginSubmit()) {
+				// Declined; this submission is over.
+				if (sSubmission == this)
+					sSubmission = null;
+				return;
+			}
+
+			// Move the list of traces to a private variable.
+			// This ensures that subsequent calls to hasStackTraces()
+			// while the submission thread is ongoing, will return
+			// false, or at least would refer to some new set of
+			// traces. The files stay on disk until uploaded, but are
+			// marked as claimed so that we don't load them again.
+			//
+			// Yes, it would not be a problem from our side to have
+			// two of these submission threads ongoing at the same
+			// time (although it wouldn't currently happen as no new
+			// traces can be added to the list besides through crashing
+			// the process); however, the user's callback processor
+			// might not be written to deal with that scenario.
+			ArrayList<String[]> tracesNowSubmitting = sStackTraces;
+			sStackTraces = null;
+			claim(tracesNowSubmitting, true);
+
+			try {
+				if (executor != null)
+					mTask.executeOn(executor, tracesNowSubmitting);
+				else
+					mTask.execute(tracesNowSubmitting);
+			} catch (RejectedExecutionException e) {
+				// The task finishes itself, so that the processor still
+				// gets its submitDone(); we only need to give the traces
+				// back for the next attempt.
+				Log.e(G.TAG, "Executor rejected trace submission", e);
+				claim(tracesNowSubmitting, false);
+				if (sStackTraces == null)
+					sStackTraces = tracesNowSubmitting;
+			}
+		}
+
+		/**
+		 * Called on the UI thread after setup() connected a new processor.
+		 */
+		void resume() {
+			if (mWaiting && mTask.getWrapped() != null) {
+				mWaiting = false;
+				begin(mWaitingExecutor);
+			}
 		}
 	}
 
@@ -0,0 +1,74 @@
+package com.nullwire.trace;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+import android.os.Looper;
+import android.os.MessageQueue;
+
+/**
+ * Postpones uploads until the app is done starting up.
+ *
+ * By default, "done" means the UI thread's message queue has run dry
+ * for the first time after scheduling. Alternatively, pass
+ * "waitForSignal" and call startupComplete() yourself, for example once
+ * your first screen has loaded its data.
+ */
+public class IdleSubmissionScheduler implements SubmissionScheduler {
+
+	private final Executor mExecutor;
+	private final boolean mWaitForSignal;
+	private boolean mStartupComplete = false;
+	private final ArrayList<Submission> mPending = new ArrayList<Submission>();
+
+	public IdleSubmissionScheduler() {
+		this(null, false);
+	}
+
+	/**
+	 * @param executor where to run the upload, or "null" for the default.
+	 * @param waitForSignal hold off until startupComplete() is called,
+	 *     rather than until the UI thread is idle.
+	 */
+	public IdleSubmissionScheduler(Executor executor, boolean waitForSignal) {
+		mExecutor = executor;
+		mWaitForSignal = waitForSignal;
+	}
+
+	public void schedule(final Submission submission) {
+		if (!mWaitForSignal) {
+			Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+				public boolean queueIdle() {
+					submission.start(mExecutor);
+					return false;
+				}
+			});
+			return;
+		}
+
+		synchronized (this) {
+			if (!mStartupComplete) {
+				mPending.add(submission);
+				return;
+			}
+		}
+		submission.start(mExecutor);
+	}
+
+	/**
+	 * Tell the scheduler that startup is over. All submissions that have
+	 * been waiting for this start now; later ones start right away.
+	 *
+	 * Only meaningful if constructed with "waitForSignal".
+	 */
+	public void startupComplete() {
+		ArrayList<Submission> pending;
+		synchronized (this) {
+			mStartupComplete = true;
+			pending = new ArrayList<Submission>(mPending);
+			mPending.clear();
+		}
+		for (Submission submission : pending)
+			submission.start(mExecutor);
+	}
+}
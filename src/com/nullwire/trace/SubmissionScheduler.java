@@ -0,0 +1,35 @@
+package com.nullwire.trace;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Decides when, and on which executor, stack traces from a previous
+ * crash are uploaded.
+ *
+ * By default, ExceptionHandler uses an IdleSubmissionScheduler, which
+ * waits until the UI thread first becomes idle, so the upload doesn't
+ * compete with the app's own startup work. Install a different one via
+ * ExceptionHandler.setSubmissionScheduler() before calling setup().
+ */
+public interface SubmissionScheduler {
+
+	/**
+	 * A pending upload, handed to schedule().
+	 */
+	public static interface Submission {
+		/**
+		 * Begin the upload, on the given executor, or on the default
+		 * background thread if "null". May be called from any thread;
+		 * calls after the first are ignored.
+		 */
+		void start(Executor executor);
+	}
+
+	/**
+	 * Called on the UI thread once setup() or submit() found traces to
+	 * upload. Implementations are expected to call start() eventually on
+	 * every submission they are given, even if another one is still
+	 * waiting. Only then is the processor's beginSubmit() called.
+	 */
+	void schedule(Submission submission);
+}
@@ -0,0 +1,172 @@
+package com.nullwire.trace;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hammers ActivityAsyncTask's state machine from several threads at
+ * once: while the task runs and finishes, a number of threads keep
+ * connecting and disconnecting, the way rotations under load would.
+ * The background work only completes once they are under way, and they
+ * only stop once the result has been delivered, so that finishing
+ * always races with them.
+ *
+ * Each round checks that processPostExecute() ran exactly once, with
+ * the right result, and that no swap was lost: since reconnectTo()
+ * returns the object it replaced, every object connected must come
+ * back from exactly one later swap. If finishing the task overwrote
+ * a concurrent disconnect, the object delivered to would come back
+ * twice (it was connected again behind the rotator's back); if it
+ * overwrote a concurrent connect, that object would never come back.
+ *
+ * Runs on a plain JVM, no Android needed:
+ *
+ *     $ ant stress-test
+ *
+ * or, after "ant compile":
+ *
+ *     $ javac -cp build/classes -d build/tests tests/com/nullwire/trace/*.java
+ *     $ java -cp build/classes:build/tests com.nullwire.trace.ActivityAsyncTaskStressTest [rounds]
+ */
+public class ActivityAsyncTaskStressTest {
+
+	private static final int THREADS = 4;
+	// Swaps each thread makes before the background work may complete.
+	private static final int SWAPS_BEFORE_FINISH = 5;
+	// In case delivery never happens.
+	private static final int MAX_SWAPS_PER_THREAD = 100000;
+
+	private static class Activity {
+		// How often a swap returned this object as the one it replaced.
+		final AtomicInteger replaced = new AtomicInteger(0);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+
+		// Stands in for the UI thread.
+		final ScheduledExecutorService ui = Executors.newSingleThreadScheduledExecutor();
+		ActivityAsyncTask.CallbackPoster poster = new ActivityAsyncTask.CallbackPoster() {
+			public void post(Runnable runnable, long delayMillis) {
+				ui.schedule(runnable, delayMillis, TimeUnit.MILLISECONDS);
+			}
+		};
+		ExecutorService background = Executors.newSingleThreadExecutor();
+		ExecutorService rotators = Executors.newFixedThreadPool(THREADS);
+
+		int failures = 0;
+		for (int round = 0; round < rounds; round++) {
+			String failure = runRound(round, poster, background, rotators);
+			if (failure != null) {
+				failures++;
+				System.err.println("round " + round + ": " + failure);
+			}
+		}
+
+		ui.shutdown();
+		background.shutdown();
+		rotators.shutdown();
+		System.out.println(rounds + " rounds, " + failures + " failures");
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	private static String runRound(int round, ActivityAsyncTask.CallbackPoster poster,
+			ExecutorService background, ExecutorService rotators) throws Exception {
+		final Integer expected = Integer.valueOf(round);
+		final AtomicInteger deliveries = new AtomicInteger(0);
+		final AtomicReference<String> problem = new AtomicReference<String>();
+		final AtomicReference<Activity> deliveredTo = new AtomicReference<Activity>();
+		final CountDownLatch delivered = new CountDownLatch(1);
+		final CountDownLatch rotating = new CountDownLatch(THREADS);
+		// Every object ever connected.
+		final Queue<Activity> connected = new ConcurrentLinkedQueue<Activity>();
+
+		Activity first = new Activity();
+		connected.add(first);
+		final ActivityAsyncTask<Activity, Object, Object, Integer> task =
+				new ActivityAsyncTask<Activity, Object, Object, Integer>(first, poster) {
+			@Override
+			protected Integer doInBackground(Object... params) {
+				try {
+					rotating.await(5, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return expected;
+			}
+
+			@Override
+			protected void processPostExecute(Activity wrapped, Integer result) {
+				if (wrapped == null)
+					problem.set("delivered to null");
+				else if (!expected.equals(result))
+					problem.set("delivered " + result + " instead of " + expected);
+				deliveredTo.set(wrapped);
+				deliveries.incrementAndGet();
+				delivered.countDown();
+			}
+		};
+
+		Future<?>[] futures = new Future<?>[THREADS];
+		for (int i = 0; i < THREADS; i++)
+			futures[i] = rotators.submit(new Runnable() {
+				public void run() {
+					for (int j = 0; j < MAX_SWAPS_PER_THREAD && delivered.getCount() > 0; j++) {
+						if (j == SWAPS_BEFORE_FINISH)
+							rotating.countDown();
+						noteReplaced(task.reconnectTo(null));
+						Activity next = new Activity();
+						connected.add(next);
+						noteReplaced(task.reconnectTo(next));
+					}
+				}
+			});
+		task.executeOn(background);
+		for (Future<?> future : futures)
+			future.get();
+
+		// Whatever happened above, once something is connected, the
+		// result must have been delivered, or be about to.
+		Activity last = new Activity();
+		connected.add(last);
+		noteReplaced(task.reconnectTo(last));
+		if (!delivered.await(5, TimeUnit.SECONDS))
+			return "never delivered";
+		// Give a wrongful second delivery the chance to show up.
+		Thread.yield();
+		// Disconnect, so that every object should have been replaced
+		// exactly once.
+		noteReplaced(task.reconnectTo(null));
+
+		if (problem.get() != null)
+			return problem.get();
+		if (deliveries.get() != 1)
+			return "delivered " + deliveries.get() + " times";
+		if (!connected.contains(deliveredTo.get()))
+			return "delivered to an object that was never connected";
+		if (!task.postProcessingDone())
+			return "postProcessingDone() is false after delivery";
+		if (task.getStatus() != ActivityAsyncTask.Status.FINISHED)
+			return "status is " + task.getStatus() + " after delivery";
+		for (Activity activity : connected) {
+			int replaced = activity.replaced.get();
+			if (replaced != 1)
+				return "an object" + (activity == deliveredTo.get() ? " delivered to" : "")
+						+ " was replaced " + replaced + " times, a swap was lost";
+		}
+		return null;
+	}
+
+	private static void noteReplaced(Activity previous) {
+		if (previous != null)
+			previous.replaced.incrementAndGet();
+	}
+}